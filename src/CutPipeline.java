@@ -0,0 +1,282 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ *  Runs a cutting job as a chain of stages, such as import -> transform -> optimize -> encode, where each stage
+ *  runs on its own pooled thread and hands its output to the next stage through a bounded queue.  The last stage
+ *  feeds a writer (normally code that sends commands using USBIO) which runs on the calling thread, so the cutter
+ *  can start on the first encoded chunk while later parts of the design are still being prepared.  Because the
+ *  queues are bounded, a stage that gets too far ahead of the cutter simply blocks until there is room again.
+ *
+ *  Usage:
+ *    CutPipeline.from("import", 16, src -> ...)
+ *      .then("transform", path -> ...)
+ *      .then("encode", path -> ...)
+ *      .drain("write", cmds -> ...);
+ *
+ *  Note: a stage function can return null to drop an item.  Per stage counts, busy time and queue depth can
+ *  be read using getStages() while the job is running, or after drain() returns.  Each handle returned by
+ *  from() or then() can only be extended, or drained once, so a pipeline can't branch or be run twice.
+ */
+
+class CutPipeline<T> {
+  private static final Object   END = new Object();          // Marks end of stream (or abort) for the next stage
+  private static final long     SHUTDOWN = 1000;             // Max ms drain() waits for stages to stop
+  private final Job             job;
+  private boolean               used;
+
+  private static class Job {
+    private final List<Stage>   stages = new ArrayList<>();
+    private final int           capacity;
+    private volatile Throwable  error;
+
+    Job (int capacity) {
+      this.capacity = capacity;
+    }
+  }
+
+  /**
+   * Holds one stage of the pipeline along with the counters used to find the slowest (bottleneck) stage
+   */
+  static class Stage implements Runnable {
+    final String                        name;
+    private final Job                   job;
+    private final Consumer<Consumer<Object>> source;
+    private final Function<Object, ?>   func;               // null for source stage and writer stage
+    private final BlockingQueue<Object> in;
+    private Stage                       next;
+    private volatile long               items, busy;
+    private volatile int                peak;
+
+    private Stage (Job job, String name, Consumer<Consumer<Object>> source, Function<Object, ?> func) {
+      this.job = job;
+      this.name = name;
+      this.source = source;
+      this.func = func;
+      in = source == null ? new ArrayBlockingQueue<>(job.capacity) : null;
+    }
+
+    public void run () {
+      Thread.currentThread().setName("CutPipeline " + name);
+      boolean done = false;
+      try {
+        if (source != null) {
+          long start = System.nanoTime();
+          long[] blocked = {0};
+          source.accept(item -> {
+            long wait = System.nanoTime();
+            emit(item);
+            blocked[0] += System.nanoTime() - wait;
+            busy = System.nanoTime() - start - blocked[0];
+          });
+          busy = System.nanoTime() - start - blocked[0];
+        } else {
+          Object item;
+          while (job.error == null && (item = in.take()) != END) {
+            long start = System.nanoTime();
+            Object out = func.apply(item);
+            busy += System.nanoTime() - start;
+            if (out != null) {
+              emit(out);
+            }
+          }
+        }
+        done = job.error == null;
+      } catch (InterruptedException ex) {
+        // Job was cancelled by a failure in another stage
+        Thread.currentThread().interrupt();
+      } catch (CancellationException ex) {
+        // Job was cancelled by a failure in another stage
+      } catch (Throwable ex) {
+        if (job.error == null) {
+          job.error = ex;
+        }
+      } finally {
+        if (next != null) {
+          if (done) {
+            try {
+              next.in.put(END);
+            } catch (InterruptedException ex) {
+              // Downstream is being shut down, too
+              Thread.currentThread().interrupt();
+            }
+          } else {
+            // Don't block on a full queue after a failure, as the next stage may already have quit.  If the queue
+            // is full, the next stage isn't waiting on it and will see job.error before it takes another item
+            next.in.offer(END);
+          }
+        }
+      }
+    }
+
+    private void emit (Object item) {
+      items++;
+      if (next != null) {
+        try {
+          next.in.put(item);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new CancellationException("Pipeline cancelled");
+        }
+        next.peak = Math.max(next.peak, next.in.size());
+      }
+    }
+
+    /**
+     * Get number of items this stage has passed on
+     * @return count of items
+     */
+    long getItems () {
+      return items;
+    }
+
+    /**
+     * Get time this stage spent doing work, not counting time spent waiting on its input or output queues
+     * @return busy time in nanoseconds
+     */
+    long getBusyNanos () {
+      return busy;
+    }
+
+    /**
+     * Get the rate at which this stage could process items if it never had to wait on other stages
+     * @return items per second of busy time
+     */
+    double getThroughput () {
+      long nanos = busy;
+      return nanos > 0 ? items * 1e9 / nanos : 0;
+    }
+
+    /**
+     * Get number of items currently waiting in this stage's input queue
+     * @return current queue depth (always 0 for the first stage)
+     */
+    int getQueueDepth () {
+      return in != null ? in.size() : 0;
+    }
+
+    /**
+     * Get the deepest this stage's input queue has been.  A stage whose input queue stays near capacity
+     * is the bottleneck
+     * @return peak queue depth
+     */
+    int getPeakDepth () {
+      return peak;
+    }
+
+    public String toString () {
+      return String.format("%-10s %6d items, %8.1f ms busy, %10.1f items/sec, queue %d/%d (peak %d)",
+          name, items, busy / 1e6, getThroughput(), getQueueDepth(), in != null ? job.capacity : 0, peak);
+    }
+  }
+
+  private CutPipeline (Job job) {
+    this.job = job;
+  }
+
+  /**
+   * Start a new pipeline with a source stage that passes each item it creates to the supplied Consumer
+   * @param name name of stage (used in stats)
+   * @param capacity maximum number of items allowed to wait between any two stages
+   * @param source code that generates the items for the job
+   * @param <T> type of items generated by source
+   * @return new pipeline
+   */
+  @SuppressWarnings("unchecked")
+  static <T> CutPipeline<T> from (String name, int capacity, Consumer<Consumer<T>> source) {
+    Job job = new Job(Math.max(capacity, 1));
+    job.stages.add(new Stage(job, name, (Consumer<Consumer<Object>>) (Consumer<?>) source, null));
+    return new CutPipeline<>(job);
+  }
+
+  /**
+   * Add a stage that applies func to each item output by the prior stage
+   * @param name name of stage (used in stats)
+   * @param func converts an input item into an output item, or returns null to drop the item
+   * @param <R> type of items output by this stage
+   * @return pipeline that outputs items of type R
+   */
+  @SuppressWarnings("unchecked")
+  <R> CutPipeline<R> then (String name, Function<? super T, ? extends R> func) {
+    use();
+    add(new Stage(job, name, null, (Function<Object, ?>) func));
+    return new CutPipeline<>(job);
+  }
+
+  /**
+   * Start all stages and feed their output to writer on the calling thread.  Returns after the last item
+   * is written, or throws if any stage, or the writer, fails (the remaining stages are then cancelled).  Either
+   * way, all stages have stopped (or SHUTDOWN ms have passed) before this returns
+   * @param name name of writer stage (used in stats)
+   * @param writer code that consumes the output of the last stage, such as by sending it to the cutter
+   */
+  @SuppressWarnings("unchecked")
+  void drain (String name, Consumer<? super T> writer) {
+    use();
+    Stage sink = new Stage(job, name, null, null);
+    add(sink);
+    List<Stage> stages = job.stages;
+    ExecutorService pool = Executors.newFixedThreadPool(stages.size() - 1, run -> {
+      Thread thread = new Thread(run, "CutPipeline");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      for (Stage stage : stages.subList(0, stages.size() - 1)) {
+        pool.execute(stage);
+      }
+      Object item;
+      // Stop sending as soon as any stage fails, even if there are still items waiting in the queue
+      while (job.error == null && (item = sink.in.take()) != END) {
+        long start = System.nanoTime();
+        writer.accept((T) item);
+        sink.busy += System.nanoTime() - start;
+        sink.items++;
+      }
+      if (job.error != null) {
+        throw new IllegalStateException("Pipeline failed: " + job.error, job.error);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Pipeline interrupted");
+    } finally {
+      // Stops any stages still blocked on a queue if the writer, or another stage failed, then waits for them
+      // to finish so their stats are final and no stage code is still running once drain() returns
+      pool.shutdownNow();
+      try {
+        pool.awaitTermination(SHUTDOWN, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Get the stages in this pipeline (including the writer stage once drain() has been called)
+   * @return list of stages in pipeline order
+   */
+  List<Stage> getStages () {
+    return new ArrayList<>(job.stages);
+  }
+
+  private void use () {
+    if (used) {
+      throw new IllegalStateException("Pipeline has already been extended or drained");
+    }
+    used = true;
+  }
+
+  private void add (Stage stage) {
+    List<Stage> stages = job.stages;
+    stages.get(stages.size() - 1).next = stage;
+    stages.add(stage);
+  }
+}
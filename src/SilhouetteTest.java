@@ -2,9 +2,11 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -53,6 +55,8 @@ import java.util.List;
 public class SilhouetteTest extends JFrame {
   private static DecimalFormat  df = new DecimalFormat("0.##");
   private static List<Cutter>   cutters = new LinkedList<>();
+  private static final int      JOB_QUEUE = 16;           // Max items waiting between each stage of runJob()
+  private static final int      MAX_CMD = 63;             // Endpoint buffer is 64 bytes, including 0x03 terminator
   private JTextArea             text = new JTextArea();
   private JTextField            command;
   private JCheckBox             moveTest, drawTest, penTest, circleTest, showCmds, sendCmd;
@@ -85,6 +89,29 @@ public class SilhouetteTest extends JFrame {
     }
   }
 
+  /**
+   * One piece of a cutting job, which is either a polyline that starts with a move to pnts[0] and then draws
+   * to each of the other points, or a 4 point Bezier curve (see bezierCmd())
+   */
+  static class Path {
+    final int               pen;                  // 1 or 2 to select a pen, or 0 to use current pen
+    final boolean           curve, cont;
+    final Point2D.Double[]  pnts;
+
+    Path (int pen, Point2D.Double... pnts) {
+      this.pen = pen;
+      this.pnts = pnts;
+      curve = cont = false;
+    }
+
+    Path (Point2D.Double[] pnts, boolean cont) {
+      this.pnts = pnts;
+      this.cont = cont;
+      pen = 0;
+      curve = true;
+    }
+  }
+
   static {
     cutters.add(new Cutter("Curio",    (short) 0x0B4D, (short) 0x112C, (byte) 0, (byte) 0x01, (byte) 0x82));
     // Values for the devices below are not verified and are included only as placeholders until they are
@@ -162,24 +189,21 @@ public class SilhouetteTest extends JFrame {
         setDrawSpeed(6);
         if (drawTest.isSelected()) {
           appendLine("Do Draw Test");
-          doWait();
+          // Draw a rectangle the size of the cutting area minus 150 or 300 units with each pen.  The job is
+          // prepared by runJob() while it's being drawn and the encode stage packs each rectangle into as few
+          // draw commands as will fit in the 64 byte limit of the endpoint buffer.  Unlike move commands, draw
+          // commands execute in sequence and the next command does not proceed until the prior comamnd is complete.
+          List<Path> rects = new ArrayList<>();
           for (int pen = 1; pen <= 2; pen++) {
             int inset = 150 * pen;
-            appendLine("  Draw with Pen " + pen);
-            selectPen(pen);
-            moveTo(work.x + inset, work.y + inset);
-            // Build one command string to draw a rectangle the size of the cutting area minus 150 or 300 units
-            // Unlike move commands, draw commands execute in sequence and the next command does not proceed
-            // until the prior comamnd is complete.  This means that only one send command is needed as long as
-            // the total length of the set of commands does not exceed the 64 byte limit of the endpoint buffer.
-            String draw = "D" +
-                formatCoords(work.width - inset, work.y + inset) + "," +
-                formatCoords(work.width - inset, work.height - inset) + "," +
-                formatCoords(work.x + inset, work.height - inset) + "," +
-                formatCoords(work.x + inset, work.y + inset);
-            sendCmd(draw);
-            doWait();
+            rects.add(new Path(pen,
+                new Point2D.Double(work.x + inset, work.y + inset),
+                new Point2D.Double(work.width - inset, work.y + inset),
+                new Point2D.Double(work.width - inset, work.height - inset),
+                new Point2D.Double(work.x + inset, work.height - inset),
+                new Point2D.Double(work.x + inset, work.y + inset)));
           }
+          runJob(work, new AffineTransform(), rects);
         }
         // Used to try out experimental command sequences
         if (penTest.isSelected()) {
@@ -216,7 +240,7 @@ public class SilhouetteTest extends JFrame {
            *    sendCmd("BZ1,508,2032,508,2038.72,508.06,2045.42,508.20,2052.10,0");
            *    doWait();
            */
-          // This draws the same 4x4 inch circle (minus lead in/out) using the new bezier() function
+          // This draws the same 4x4 inch circle (minus lead in/out) using runJob(), which uses bezierCmd()
           Point2D.Double[][] points = {
               {new Point2D.Double(2032.0, 508.0), new Point2D.Double(2592.62, 508.0),
                   new Point2D.Double(3048.0, 963.38), new Point2D.Double(3048.0, 1524.0)},
@@ -226,10 +250,11 @@ public class SilhouetteTest extends JFrame {
                   new Point2D.Double(1016.0, 2084.62), new Point2D.Double(1016.0, 1524.0)},
               {new Point2D.Double(1016.0, 1524.0), new Point2D.Double(1016.0, 963.38),
                   new Point2D.Double(1471.38, 508.0), new Point2D.Double(2032.0, 508.0)}};
+          List<Path> curves = new ArrayList<>();
           for (int ii = 0; ii < points.length; ii++) {
-            bezier(points[ii], (ii != 0));
+            curves.add(new Path(points[ii], (ii != 0)));
           }
-          doWait();
+          runJob(work, new AffineTransform(), curves);
         }
         appendLine("Return to Home Position");
         moveHome();
@@ -370,20 +395,21 @@ public class SilhouetteTest extends JFrame {
   }
 
   /**
-   * Draw a 4 point Bezier curve to Silhouette device
+   * Build the command to draw a 4 point Bezier curve on Silhouette device
    *  pnts[0] is starting point
    *  pnts[1] is first control point
    *  pnts[2] is second control points
    *  pnts[3] is ending point for curve (and the starting point for the next segment)
    * @param pnts 4 bezier (points start, cp1, cp3, end)
    * @param cont true if this curve continues from another curve segment or a line segment
+   * @return BZ command String
    */
-  private void bezier (Point2D.Double[] pnts, boolean cont) {
-    sendCmd("BZ" + (cont ? "1" : "0") + "," +
+  private String bezierCmd (Point2D.Double[] pnts, boolean cont) {
+    return "BZ" + (cont ? "1" : "0") + "," +
     formatCoords(pnts[0]) + "," +
     formatCoords(pnts[1]) + "," +
     formatCoords(pnts[2]) + "," +
-    formatCoords(pnts[3]));
+    formatCoords(pnts[3]);
   }
 
   /**
@@ -465,6 +491,152 @@ public class SilhouetteTest extends JFrame {
     text.setCaretPosition(text.getDocument().getLength());
   }
 
+  /**
+   * Prepares and sends a cutting job using a CutPipeline where each Path in design goes through separate
+   * transform, optimize and encode stages running in parallel.  The encoded commands are sent on the calling
+   * thread as soon as the first Path is ready and, as the queues between stages are limited to JOB_QUEUE items,
+   * preparation of a large job can only run a little ahead of the cutter.  Before anything is sent, every Path
+   * is checked against the work area so a bad coordinate can't stop the job partway through.  If the job still
+   * fails once started, waits for motion to stop and returns the tool head to home before rethrowing.  Prints
+   * the stats for each stage when done to show which one is the bottleneck.
+   * @param work work area (job fails if a transformed Path does not fit inside it)
+   * @param xform transform used to scale, rotate or position the design (in units)
+   * @param design Paths for the job
+   */
+  private void runJob (Rectangle2D.Double work, AffineTransform xform, List<Path> design) {
+    for (Path path : design) {
+      transformPath(path, xform, work);
+    }
+    CutPipeline<List<String>> job = CutPipeline.from("import", JOB_QUEUE, design::forEach)
+        .then("transform", path -> transformPath(path, xform, work))
+        .then("optimize", SilhouetteTest::optimizePath)
+        .then("encode", this::encodePath);
+    try {
+      job.drain("write", cmds -> {
+        for (String cmd : cmds) {
+          sendJobCmd(cmd);
+        }
+      });
+      doWait();
+    } catch (RuntimeException ex) {
+      try {
+        doWait();
+        moveHome();
+      } catch (RuntimeException ex2) {
+        ex.addSuppressed(ex2);
+      }
+      throw ex;
+    } finally {
+      for (CutPipeline.Stage stage : job.getStages()) {
+        appendLine("  " + stage);
+      }
+    }
+  }
+
+  /**
+   * Transform stage of runJob() which applies xform to every point in a Path, including the control points
+   * of a Bezier curve, as an affine transform keeps the shape of the curve and its continuity with the next
+   * segment.  As a Bezier curve always lies inside its control points, checking every point against the
+   * work area ensures the tool head will stay inside it
+   * @param path Path to transform
+   * @param xform transform to apply
+   * @param work work area
+   * @return transformed Path
+   * @throws IllegalArgumentException if any transformed point is outside the work area
+   */
+  private static Path transformPath (Path path, AffineTransform xform, Rectangle2D.Double work) {
+    Point2D.Double[] pnts = new Point2D.Double[path.pnts.length];
+    for (int ii = 0; ii < pnts.length; ii++) {
+      Point2D.Double pnt = (Point2D.Double) xform.transform(path.pnts[ii], new Point2D.Double());
+      if (pnt.x < work.x || pnt.x > work.width || pnt.y < work.y || pnt.y > work.height) {
+        throw new IllegalArgumentException(String.format("Point %.2f, %.2f is outside of work area", pnt.x, pnt.y));
+      }
+      pnts[ii] = pnt;
+    }
+    return path.curve ? new Path(pnts, path.cont) : new Path(path.pen, pnts);
+  }
+
+  /**
+   * Optimize stage of runJob() which removes repeated points from a polyline and drops polylines that
+   * have nothing left to draw.  Note: use drawTo() instead to deliberately draw in place (see Pen Dwell test)
+   * @param path Path to optimize
+   * @return optimized Path, or null if nothing is left to draw
+   */
+  private static Path optimizePath (Path path) {
+    if (path.curve) {
+      return path;
+    }
+    List<Point2D.Double> pnts = new ArrayList<>();
+    for (Point2D.Double pnt : path.pnts) {
+      if (pnts.isEmpty() || !pnt.equals(pnts.get(pnts.size() - 1))) {
+        pnts.add(pnt);
+      }
+    }
+    return pnts.size() < 2 ? null : new Path(path.pen, pnts.toArray(new Point2D.Double[0]));
+  }
+
+  /**
+   * Encode stage of runJob() which converts a Path into a list of commands where long polylines are split
+   * into as many draw commands as needed to keep each one within the 64 byte limit of the endpoint buffer and
+   * a Bezier curve is rounded to whole units, if needed, to fit
+   * Note: this is the only thread calling formatCoords() while a job is running, so sharing df is safe
+   * @param path Path to encode
+   * @return list of commands (without 0x03 terminators)
+   */
+  private List<String> encodePath (Path path) {
+    List<String> cmds = new ArrayList<>();
+    if (path.curve) {
+      String cmd = bezierCmd(path.pnts, path.cont);
+      if (cmd.length() > MAX_CMD) {
+        // Round to whole units (1/508 inch) so the command fits in the endpoint buffer
+        Point2D.Double[] pnts = new Point2D.Double[path.pnts.length];
+        for (int ii = 0; ii < pnts.length; ii++) {
+          pnts[ii] = new Point2D.Double(Math.round(path.pnts[ii].x), Math.round(path.pnts[ii].y));
+        }
+        if ((cmd = bezierCmd(pnts, path.cont)).length() > MAX_CMD) {
+          throw new IllegalArgumentException("Bezier command too long: " + cmd);
+        }
+      }
+      cmds.add(cmd);
+      return cmds;
+    }
+    if (path.pen == 1 || path.pen == 2) {
+      cmds.add("J" + path.pen);
+    }
+    cmds.add("M" + formatCoords(path.pnts[0]));
+    StringBuilder draw = new StringBuilder();
+    for (int ii = 1; ii < path.pnts.length; ii++) {
+      String coords = formatCoords(path.pnts[ii]);
+      if (draw.length() > 0 && draw.length() + 1 + coords.length() > MAX_CMD) {
+        cmds.add(draw.toString());
+        draw.setLength(0);
+      }
+      draw.append(draw.length() == 0 ? "D" : ",").append(coords);
+    }
+    cmds.add(draw.toString());
+    return cmds;
+  }
+
+  /**
+   * Writer stage of runJob() which sends one encoded command.  As a move, or a tool change should not start
+   * until any queued draw commands are complete, waits for motion to stop first and, like moveTo(), waits
+   * for a move to complete before returning
+   * @param cmd command to send
+   */
+  private void sendJobCmd (String cmd) {
+    boolean move = cmd.startsWith("M");
+    if (move || cmd.startsWith("J")) {
+      doWait();
+    }
+    if (cmd.startsWith("J")) {
+      appendLine("  Draw with Pen " + cmd.substring(1));
+    }
+    sendCmd(cmd);
+    if (move) {
+      doWait();
+    }
+  }
+
   /**
    * Used by doWait() to get status of plotter
    * @return '1' if plotter is executing a move or draw command
@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Checks that CutPipeline delivers every item in order and that a failure in any stage, or the writer, makes
+ *  drain() throw promptly without leaving stage threads behind.  CutPipeline has no USB dependency, so this
+ *  runs without a cutter attached:
+ *    javac -d out src/CutPipeline.java test/CutPipelineTest.java
+ *    java -ea -cp out CutPipelineTest
+ */
+
+class CutPipelineTest {
+  private static final int  ITEMS = 1000;
+  private static final int  RUNS = 50;
+  private static final long LIMIT = TimeUnit.SECONDS.toMillis(5);   // Max ms a failed run may take
+
+  public static void main (String[] args) throws Exception {
+    testInOrder();
+    testDropped();
+    for (int ii = 0; ii < RUNS; ii++) {
+      testFailure("source");
+      testFailure("middle");
+      testFailure("writer");
+    }
+    testReuse();
+    System.out.println("CutPipelineTest passed");
+  }
+
+  private static void testInOrder () {
+    List<Integer> out = new ArrayList<>();
+    CutPipeline.<Integer>from("import", 2, src -> {
+      for (int ii = 0; ii < ITEMS; ii++) {
+        src.accept(ii);
+      }
+    }).then("double", ii -> ii * 2)
+      .then("half", ii -> ii / 2)
+      .drain("write", out::add);
+    check(out.size() == ITEMS, "expected " + ITEMS + " items, got " + out.size());
+    for (int ii = 0; ii < ITEMS; ii++) {
+      check(out.get(ii) == ii, "item " + ii + " out of order: " + out.get(ii));
+    }
+    checkNoThreads();
+  }
+
+  private static void testDropped () {
+    List<Integer> out = new ArrayList<>();
+    CutPipeline.<Integer>from("import", 2, src -> {
+      for (int ii = 0; ii < ITEMS; ii++) {
+        src.accept(ii);
+      }
+    }).then("odd", ii -> ii % 2 != 0 ? ii : null)
+      .drain("write", out::add);
+    check(out.size() == ITEMS / 2, "expected " + ITEMS / 2 + " items, got " + out.size());
+    for (int ii = 0; ii < out.size(); ii++) {
+      check(out.get(ii) == ii * 2 + 1, "item " + ii + " out of order: " + out.get(ii));
+    }
+    checkNoThreads();
+  }
+
+  /**
+   * Uses capacity 2 and a source that can fill every queue so stages are blocked on put() and take() when
+   * the failure happens
+   */
+  private static void testFailure (String where) {
+    List<Integer> out = Collections.synchronizedList(new ArrayList<>());
+    long start = System.currentTimeMillis();
+    try {
+      CutPipeline.<Integer>from("import", 2, src -> {
+        for (int ii = 0; ii < ITEMS; ii++) {
+          if (where.equals("source") && ii == 5) {
+            throw new RuntimeException();
+          }
+          src.accept(ii);
+        }
+      }).then("middle", ii -> {
+          if (where.equals("middle") && ii == 5) {
+            throw new NullPointerException();
+          }
+          return ii;
+        })
+        .then("encode", ii -> ii)
+        .drain("write", ii -> {
+          if (where.equals("writer") && ii == 5) {
+            throw new RuntimeException("usb");
+          }
+          out.add(ii);
+        });
+      check(false, "failure in " + where + " did not make drain() throw");
+    } catch (RuntimeException ex) {
+      check(!ex.getMessage().contains("null"), "failure message hides exception: " + ex.getMessage());
+    }
+    long time = System.currentTimeMillis() - start;
+    check(time < LIMIT, "failure in " + where + " took " + time + " ms");
+    for (Integer ii : out) {
+      check(ii < 5, "item " + ii + " written after failure in " + where);
+    }
+    checkNoThreads();
+  }
+
+  private static void testReuse () {
+    CutPipeline<Integer> src = CutPipeline.from("import", 2, out -> out.accept(1));
+    src.then("a", ii -> ii);
+    try {
+      src.then("b", ii -> ii);
+      check(false, "then() allowed twice on the same handle");
+    } catch (IllegalStateException ex) {
+      // Expected
+    }
+    CutPipeline<Integer> last = CutPipeline.from("import", 2, out -> out.accept(1));
+    last.drain("write", ii -> { });
+    try {
+      last.drain("write", ii -> { });
+      check(false, "drain() allowed twice on the same handle");
+    } catch (IllegalStateException ex) {
+      // Expected
+    }
+  }
+
+  /**
+   * drain() waits for all stages to stop before it returns, so no stage thread should still be alive once
+   * it has had a moment to exit
+   */
+  private static void checkNoThreads () {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("CutPipeline")) {
+        try {
+          thread.join(100);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        check(!thread.isAlive(), "stage thread left running: " + thread.getName() + " " + thread.getState());
+      }
+    }
+  }
+
+  private static void check (boolean cond, String msg) {
+    if (!cond) {
+      throw new AssertionError(msg);
+    }
+  }
+}